@@ -2,15 +2,38 @@ package org.goncharov;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class CrptApi {
     public static void main(String[] args) throws InterruptedException {
@@ -33,6 +56,7 @@ public class CrptApi {
     private final HttpClient httpClient;
     private final ObjectMapper objectMapper;
     private final Queue<Document> requestQueue;
+    private final AuditSink auditSink;
     private ScheduledExecutorService scheduler;
 
     private final String url = "https://ismp.crpt.ru/api/v3/lk/documents/create";
@@ -43,13 +67,15 @@ public class CrptApi {
      *
      * @param timeUnit     Единица измерения времени для периода выполнения задач в планировщике.
      * @param requestLimit Максимальное количество запросов, которое может быть обработано в единицу времени.
+     * @param auditSink    Журнал аудита отправленных документов или null, если аудит не нужен.
      */
-    private CrptApi(TimeUnit timeUnit, int requestLimit) {
+    private CrptApi(TimeUnit timeUnit, int requestLimit, AuditSink auditSink) {
         this.timeUnit = timeUnit;
         this.requestLimit = requestLimit;
         this.httpClient = HttpClient.newHttpClient();
         this.objectMapper = new ObjectMapper();
         this.requestQueue = new LinkedList<>();
+        this.auditSink = auditSink;
     }
 
     /**
@@ -92,12 +118,14 @@ public class CrptApi {
 
     /**
      * Обрабатывает запрос.
+     * Если задан журнал аудита, результат отправки передается в него без ожидания записи на диск.
      *
      * @param doc Документ передаваемый в запрос.
      * @exception IOException в случае выбрасывания исключения в методе send() ли writeValueAsString()
      * @exception InterruptedException в случае прерывания работы метода send()
      */
     private void processRequest(Document doc) {
+        long start = System.nanoTime();
         try {
             System.out.println("Processing request: " + doc);
             HttpRequest request = HttpRequest.newBuilder()
@@ -105,12 +133,28 @@ public class CrptApi {
                     .header("Content-Type", "application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(doc)))
                     .build();
-            httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            if (auditSink != null) {
+                auditSink.submit(doc, response.statusCode(), elapsedMillis(start), response.body());
+            }
         } catch (IOException | InterruptedException e) {
+            if (auditSink != null) {
+                auditSink.submit(doc, AuditRecord.FAILED_STATUS, elapsedMillis(start), null);
+            }
             e.printStackTrace();
         }
     }
 
+    /**
+     * Вычисляет время, прошедшее с указанного момента.
+     *
+     * @param startNanos Момент начала, полученный из System.nanoTime().
+     * @return Прошедшее время в миллисекундах.
+     */
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
     /**
      * Builder предоставляющий экземпляр класса CrptApi.
      */
@@ -130,10 +174,854 @@ public class CrptApi {
          * @throws IllegalArgumentException Если значение количества запросов меньше 1.
          */
         public static CrptApi build(TimeUnit timeUnit, int requestLimit) {
+            return build(timeUnit, requestLimit, null);
+        }
+
+        /**
+         * Статический метод для создания экземпляра CrptApi с журналом аудита отправленных документов.
+         *
+         * @param timeUnit     Единица измерения времени для периода выполнения задач в планировщике.
+         * @param requestLimit Максимальное количество запросов, которое может быть обработано в единицу времени.
+         * @param auditSink    Журнал аудита или null, если аудит не нужен.
+         * @return Новый экземпляр CrptApi.
+         * @throws IllegalArgumentException Если значение количества запросов меньше 1.
+         */
+        public static CrptApi build(TimeUnit timeUnit, int requestLimit, AuditSink auditSink) {
             if (requestLimit < 1) {
                 throw new IllegalArgumentException("Request limit value must be larger than 0. Given request limit is: " + requestLimit);
             }
-            return new CrptApi(timeUnit, requestLimit);
+            return new CrptApi(timeUnit, requestLimit, auditSink);
+        }
+    }
+
+    /**
+     * Запись журнала аудита об отправленном документе и ответе API.
+     */
+    public static final class AuditRecord {
+        /**
+         * Статус записи, если ответ от API не был получен.
+         */
+        public static final int FAILED_STATUS = -1;
+
+        /**
+         * Длина хэша тела ответа (SHA-256) в байтах.
+         */
+        static final int HASH_LENGTH = 32;
+
+        /**
+         * Минимальная длина закодированной записи без префикса длины (пустые строки).
+         */
+        static final int MIN_LENGTH = Long.BYTES + Integer.BYTES + Long.BYTES
+                + Integer.BYTES + Integer.BYTES + HASH_LENGTH;
+
+        private final long timestamp;
+        private final String docId;
+        private final String participantInn;
+        private final int status;
+        private final long latencyMillis;
+        private final byte[] bodyHash;
+
+        /**
+         * Конструктор класса AuditRecord.
+         *
+         * @param timestamp      Время записи в миллисекундах от начала эпохи.
+         * @param docId          Идентификатор документа.
+         * @param participantInn ИНН участника.
+         * @param status         HTTP статус ответа или FAILED_STATUS.
+         * @param latencyMillis  Время выполнения запроса в миллисекундах.
+         * @param bodyHash       SHA-256 хэш тела ответа.
+         */
+        AuditRecord(long timestamp, String docId, String participantInn,
+                    int status, long latencyMillis, byte[] bodyHash) {
+            this.timestamp = timestamp;
+            this.docId = docId;
+            this.participantInn = participantInn;
+            this.status = status;
+            this.latencyMillis = latencyMillis;
+            this.bodyHash = bodyHash;
+        }
+
+        /**
+         * Получает время записи.
+         *
+         * @return Время записи в миллисекундах от начала эпохи.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Получает идентификатор документа.
+         *
+         * @return Идентификатор документа.
+         */
+        public String getDocId() {
+            return docId;
+        }
+
+        /**
+         * Получает ИНН участника.
+         *
+         * @return ИНН участника.
+         */
+        public String getParticipantInn() {
+            return participantInn;
+        }
+
+        /**
+         * Получает HTTP статус ответа.
+         *
+         * @return HTTP статус ответа или FAILED_STATUS.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Получает время выполнения запроса.
+         *
+         * @return Время выполнения запроса в миллисекундах.
+         */
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /**
+         * Получает хэш тела ответа.
+         *
+         * @return SHA-256 хэш тела ответа.
+         */
+        public byte[] getBodyHash() {
+            return bodyHash.clone();
+        }
+
+        /**
+         * Кодирует запись в буфер с префиксом длины.
+         *
+         * @return Буфер, готовый к записи в канал.
+         */
+        ByteBuffer encode() {
+            byte[] docIdBytes = docId.getBytes(StandardCharsets.UTF_8);
+            byte[] participantBytes = participantInn.getBytes(StandardCharsets.UTF_8);
+            int length = Long.BYTES + Integer.BYTES + Long.BYTES
+                    + Integer.BYTES + docIdBytes.length
+                    + Integer.BYTES + participantBytes.length
+                    + HASH_LENGTH;
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + length);
+            buffer.putInt(length)
+                    .putLong(timestamp)
+                    .putInt(status)
+                    .putLong(latencyMillis)
+                    .putInt(docIdBytes.length).put(docIdBytes)
+                    .putInt(participantBytes.length).put(participantBytes)
+                    .put(bodyHash);
+            return buffer.flip();
+        }
+
+        /**
+         * Читает запись из буфера, содержащего ровно одну запись без префикса длины.
+         *
+         * @param buffer Буфер с закодированной записью.
+         * @return Прочитанная запись или null, если запись повреждена или недописана.
+         */
+        static AuditRecord decode(ByteBuffer buffer) {
+            if (buffer.remaining() < MIN_LENGTH) {
+                return null;
+            }
+            long timestamp = buffer.getLong();
+            int status = buffer.getInt();
+            long latencyMillis = buffer.getLong();
+            String docId = readString(buffer);
+            String participantInn = docId == null ? null : readString(buffer);
+            if (participantInn == null || buffer.remaining() != HASH_LENGTH) {
+                return null;
+            }
+            byte[] bodyHash = new byte[HASH_LENGTH];
+            buffer.get(bodyHash);
+            return new AuditRecord(timestamp, docId, participantInn, status, latencyMillis, bodyHash);
+        }
+
+        /**
+         * Читает строку с префиксом длины.
+         *
+         * @param buffer Буфер с закодированной строкой.
+         * @return Прочитанная строка или null, если длина строки не помещается в запись.
+         */
+        private static String readString(ByteBuffer buffer) {
+            if (buffer.remaining() < Integer.BYTES) {
+                return null;
+            }
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining() - HASH_LENGTH) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Возвращает строковое представление записи.
+         *
+         * @return Строковое представление записи.
+         */
+        @Override
+        public String toString() {
+            return "AuditRecord{" +
+                    "timestamp=" + timestamp +
+                    ", doc_id='" + docId + '\'' +
+                    ", participant_inn='" + participantInn + '\'' +
+                    ", status=" + status +
+                    ", latencyMillis=" + latencyMillis +
+                    ", bodyHash=" + HexFormat.of().formatHex(bodyHash) +
+                    '}';
+        }
+    }
+
+    /**
+     * Журнал аудита с отложенной записью результатов отправки документов.
+     * Записи накапливаются в очереди и записываются на диск пачками фоновым потоком,
+     * поэтому поток отправки не ждет файлового ввода-вывода.
+     * Текущий сегмент пишется как последовательность записей с префиксом длины. При превышении
+     * размера сегмент сжимается блоками, а рядом сохраняется отсортированный индекс хэшей doc_id,
+     * что позволяет AuditReader распаковывать только нужные блоки.
+     */
+    public static final class AuditSink implements Closeable {
+        static final String LOG_SUFFIX = ".log";
+        static final String COMPRESSED_SUFFIX = ".z";
+        static final String INDEX_SUFFIX = ".idx";
+        private static final String PREFIX = "audit-";
+        private static final int QUEUE_CAPACITY = 65536;
+        private static final int BATCH_SIZE = 512;
+        private static final long FLUSH_INTERVAL_MILLIS = 200;
+        private static final long REPORT_INTERVAL_MILLIS = 10_000;
+        private static final int BLOCK_SIZE = 64 * 1024;
+
+        /**
+         * Максимальный размер сегмента. Ограничивает память, нужную для индекса при сжатии.
+         */
+        public static final long MAX_SEGMENT_BYTES = 256L * 1024 * 1024;
+
+        private final Path directory;
+        private final long maxSegmentBytes;
+        private final BlockingQueue<AuditRecord> queue;
+        private final ScheduledExecutorService writer;
+        private final List<AuditRecord> batch;
+        private final ReadWriteLock closeLock;
+        private final AtomicLong droppedRecords;
+        private final AtomicLong lastDropReport;
+        private final AtomicLong lastErrorReport;
+        private final Thread shutdownHook;
+        private FileChannel channel;
+        private long segmentNumber;
+        private long batchStart = -1;
+        private boolean closed;
+
+        /**
+         * Конструктор класса AuditSink.
+         * Незавершенные сегменты, оставшиеся от предыдущего запуска, сжимаются сразу.
+         * Если сжать сегмент не удалось, он остается несжатым и будет обработан при следующем запуске.
+         *
+         * @param directory       Каталог для файлов журнала.
+         * @param maxSegmentBytes Размер сегмента в байтах, после которого он сжимается и начинается новый.
+         * @throws IOException в случае ошибки работы с каталогом журнала.
+         * @throws IllegalArgumentException Если размер сегмента меньше 1 или больше MAX_SEGMENT_BYTES.
+         */
+        public AuditSink(Path directory, long maxSegmentBytes) throws IOException {
+            if (maxSegmentBytes < 1 || maxSegmentBytes > MAX_SEGMENT_BYTES) {
+                throw new IllegalArgumentException("Segment size must be between 1 and " + MAX_SEGMENT_BYTES
+                        + ". Given segment size is: " + maxSegmentBytes);
+            }
+            this.directory = directory;
+            this.maxSegmentBytes = maxSegmentBytes;
+            this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            this.batch = new ArrayList<>(BATCH_SIZE);
+            this.closeLock = new ReentrantReadWriteLock();
+            this.droppedRecords = new AtomicLong();
+            this.lastDropReport = new AtomicLong(Long.MIN_VALUE);
+            this.lastErrorReport = new AtomicLong(Long.MIN_VALUE);
+            Files.createDirectories(directory);
+            long lastSegment = 0;
+            for (long segment : segments(directory)) {
+                Path log = segmentPath(directory, segment, LOG_SUFFIX);
+                if (Files.exists(log)) {
+                    compressQuietly(segment);
+                }
+                lastSegment = segment;
+            }
+            this.segmentNumber = lastSegment + 1;
+            this.channel = openSegment(segmentNumber);
+            this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "crpt-audit-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            writer.scheduleWithFixedDelay(this::drainSafely, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            this.shutdownHook = new Thread(this::closeQuietly);
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+
+        /**
+         * Добавляет результат отправки документа в очередь на запись.
+         * Вызов никогда не ждет: если очередь переполнена, например из-за ошибок записи на диск,
+         * запись сразу отбрасывается и учитывается в getDroppedRecords(), чтобы журнал не останавливал отправку.
+         *
+         * @param doc           Отправленный документ.
+         * @param status        HTTP статус ответа или AuditRecord.FAILED_STATUS.
+         * @param latencyMillis Время выполнения запроса в миллисекундах.
+         * @param body          Тело ответа или null, если ответ не был получен.
+         */
+        public void submit(Document doc, int status, long latencyMillis, String body) {
+            AuditRecord record = new AuditRecord(System.currentTimeMillis(),
+                    Objects.toString(doc.getDoc_id(), ""), Objects.toString(doc.getParticipant_inn(), ""),
+                    status, latencyMillis, hash(body));
+            closeLock.readLock().lock();
+            try {
+                if (closed) {
+                    drop("audit sink is closed", doc, 1);
+                } else if (!queue.offer(record)) {
+                    drop("audit queue is full", doc, 1);
+                }
+            } finally {
+                closeLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Получает количество записей, которые не удалось записать в журнал.
+         *
+         * @return Количество потерянных записей.
+         */
+        public long getDroppedRecords() {
+            return droppedRecords.get();
+        }
+
+        /**
+         * Останавливает фоновую запись, записывает оставшиеся записи и закрывает текущий сегмент.
+         * Записи, добавленные после начала закрытия, отбрасываются с сообщением об ошибке.
+         * Если фоновый поток не остановился за минуту, оставшиеся записи считаются потерянными,
+         * а сегмент остается открытым этим потоком.
+         *
+         * @throws IOException в случае ошибки закрытия сегмента.
+         */
+        @Override
+        public void close() throws IOException {
+            closeLock.writeLock().lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            } finally {
+                closeLock.writeLock().unlock();
+            }
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // закрытие вызвано из shutdown hook
+            }
+            writer.shutdown();
+            boolean terminated;
+            try {
+                terminated = writer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                terminated = false;
+                Thread.currentThread().interrupt();
+            }
+            if (!terminated) {
+                droppedRecords.addAndGet(batch.size() + queue.size());
+                System.err.println("Audit writer did not stop, " + droppedRecords.get()
+                        + " audit records dropped in total");
+                return;
+            }
+            drainSafely();
+            droppedRecords.addAndGet(batch.size() + queue.size());
+            if (droppedRecords.get() > 0) {
+                System.err.println("Audit sink closed, " + droppedRecords.get() + " audit records dropped in total");
+            }
+            channel.close();
+        }
+
+        /**
+         * Закрывает журнал из shutdown hook, печатая ошибку вместо выбрасывания.
+         */
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Учитывает потерянные записи и сообщает о них не чаще одного раза в REPORT_INTERVAL_MILLIS.
+         *
+         * @param reason Причина потери.
+         * @param doc    Документ, запись о котором потеряна.
+         * @param count  Количество потерянных записей.
+         */
+        private void drop(String reason, Document doc, long count) {
+            long total = droppedRecords.addAndGet(count);
+            if (shouldReport(lastDropReport)) {
+                System.err.println("Audit record dropped, " + reason + ": " + doc
+                        + " (" + total + " dropped in total)");
+            }
+        }
+
+        /**
+         * Проверяет, прошло ли с последнего сообщения REPORT_INTERVAL_MILLIS, и отмечает новое сообщение.
+         *
+         * @param lastReport Время последнего сообщения.
+         * @return true, если сообщение нужно вывести, иначе - false.
+         */
+        private static boolean shouldReport(AtomicLong lastReport) {
+            long now = System.nanoTime();
+            long last = lastReport.get();
+            return (last == Long.MIN_VALUE || now - last >= TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL_MILLIS))
+                    && lastReport.compareAndSet(last, now);
+        }
+
+        /**
+         * Записывает накопленные записи, не давая исключению отменить фоновую задачу.
+         * Ошибки выводятся не чаще одного раза в REPORT_INTERVAL_MILLIS.
+         * Выполняется только фоновым потоком или при закрытии после его остановки.
+         */
+        private void drainSafely() {
+            try {
+                drain();
+            } catch (Throwable e) {
+                if (shouldReport(lastErrorReport)) {
+                    System.err.println("Audit writer failed, " + (batch.size() + queue.size())
+                            + " records are waiting for retry");
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Записывает накопленные в очереди записи пачками.
+         * Если запись пачки не удалась, пачка сохраняется и записывается повторно при следующем вызове.
+         *
+         * @throws IOException в случае ошибки записи.
+         */
+        private void drain() throws IOException {
+            if (!channel.isOpen()) {
+                channel = openSegment(segmentNumber);
+            }
+            while (!batch.isEmpty() || queue.drainTo(batch, BATCH_SIZE) > 0) {
+                writeBatch();
+                batch.clear();
+                if (channel.position() >= maxSegmentBytes) {
+                    rotate();
+                }
+            }
+        }
+
+        /**
+         * Записывает пачку записей одной операцией gather write.
+         * Начало пачки запоминается до успешной записи, и при повторной попытке частично записанные
+         * данные отрезаются, даже если канал был закрыт и открыт заново.
+         *
+         * @throws IOException в случае ошибки записи.
+         */
+        private void writeBatch() throws IOException {
+            if (batchStart < 0) {
+                batchStart = channel.size();
+            } else if (channel.size() > batchStart) {
+                channel.truncate(batchStart);
+            }
+            ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+            long total = 0;
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = batch.get(i).encode();
+                total += buffers[i].remaining();
+            }
+            long written = 0;
+            while (written < total) {
+                written += channel.write(buffers);
+            }
+            channel.force(false);
+            batchStart = -1;
+        }
+
+        /**
+         * Начинает новый сегмент и сжимает заполненный.
+         * Новый сегмент открывается до сжатия, поэтому ошибка сжатия не мешает дальнейшей записи.
+         *
+         * @throws IOException в случае ошибки открытия нового сегмента.
+         */
+        private void rotate() throws IOException {
+            FileChannel next = openSegment(segmentNumber + 1);
+            FileChannel full = channel;
+            long fullSegment = segmentNumber;
+            channel = next;
+            segmentNumber++;
+            full.close();
+            compressQuietly(fullSegment);
+        }
+
+        /**
+         * Открывает сегмент на дозапись.
+         *
+         * @param segment Номер сегмента.
+         * @return Канал сегмента.
+         * @throws IOException в случае ошибки открытия файла.
+         */
+        private FileChannel openSegment(long segment) throws IOException {
+            return FileChannel.open(segmentPath(directory, segment, LOG_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        /**
+         * Сжимает сегмент, печатая ошибку вместо выбрасывания.
+         * При ошибке сегмент остается несжатым и сжимается при следующем запуске.
+         *
+         * @param segment Номер сегмента.
+         */
+        private void compressQuietly(long segment) {
+            try {
+                compress(segment);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Failed to compress audit segment " + segment + ", it is left uncompressed");
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Сжимает сегмент блоками и строит для него индекс.
+         * Блок сжатого файла: исходная длина, сжатая длина, сжатые байты.
+         * Индекс: отсортированные значения (hashCode doc_id << 32 | смещение блока).
+         * Первая недописанная или поврежденная запись, например нулевой хвост файла после сбоя питания,
+         * считается концом сегмента: она и все после нее отбрасываются.
+         *
+         * @param segment Номер сегмента.
+         * @throws IOException в случае ошибки чтения или записи файлов.
+         */
+        private void compress(long segment) throws IOException {
+            Path log = segmentPath(directory, segment, LOG_SUFFIX);
+            Path compressedTmp = segmentPath(directory, segment, COMPRESSED_SUFFIX + ".tmp");
+            Path indexTmp = segmentPath(directory, segment, INDEX_SUFFIX + ".tmp");
+            long[] index = new long[1024];
+            int indexSize = 0;
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)));
+                 FileChannel out = FileChannel.open(compressedTmp, StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long remaining = Files.size(log);
+                ByteBuffer block = ByteBuffer.allocate(2 * BLOCK_SIZE);
+                byte[] compressed = new byte[BLOCK_SIZE];
+                while (remaining >= Integer.BYTES) {
+                    int length = in.readInt();
+                    remaining -= Integer.BYTES;
+                    if (length < AuditRecord.MIN_LENGTH || length > remaining) {
+                        break;
+                    }
+                    if (block.remaining() < Integer.BYTES + length) {
+                        block = ByteBuffer.allocate(block.capacity() + Integer.BYTES + length).put(block.flip());
+                    }
+                    int recordStart = block.position() + Integer.BYTES;
+                    block.putInt(length);
+                    in.readFully(block.array(), recordStart, length);
+                    AuditRecord record = AuditRecord.decode(block.slice(recordStart, length));
+                    if (record == null) {
+                        block.position(recordStart - Integer.BYTES);
+                        break;
+                    }
+                    block.position(recordStart + length);
+                    remaining -= length;
+                    String docId = record.getDocId();
+                    if (indexSize == index.length) {
+                        index = Arrays.copyOf(index, indexSize * 2);
+                    }
+                    index[indexSize++] = (long) docId.hashCode() << 32 | (out.position() & 0xFFFFFFFFL);
+                    if (block.position() >= BLOCK_SIZE) {
+                        compressed = writeBlock(out, deflater, block, compressed);
+                    }
+                }
+                if (block.position() > 0) {
+                    writeBlock(out, deflater, block, compressed);
+                }
+                out.force(false);
+            } finally {
+                deflater.end();
+            }
+            Arrays.sort(index, 0, indexSize);
+            ByteBuffer indexBuffer = ByteBuffer.allocate(indexSize * Long.BYTES);
+            for (int i = 0; i < indexSize; i++) {
+                if (i == 0 || index[i] != index[i - 1]) {
+                    indexBuffer.putLong(index[i]);
+                }
+            }
+            indexBuffer.flip();
+            try (FileChannel out = FileChannel.open(indexTmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (indexBuffer.hasRemaining()) {
+                    out.write(indexBuffer);
+                }
+                out.force(false);
+            }
+            Files.move(compressedTmp, segmentPath(directory, segment, COMPRESSED_SUFFIX),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(indexTmp, segmentPath(directory, segment, INDEX_SUFFIX),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(log);
+        }
+
+        /**
+         * Сжимает накопленный блок записей и дописывает его в сжатый файл, после чего очищает блок.
+         *
+         * @param out        Канал сжатого файла.
+         * @param deflater   Компрессор.
+         * @param block      Блок записей с префиксами длины.
+         * @param compressed Буфер для сжатых данных.
+         * @return Буфер для сжатых данных, возможно увеличенный.
+         * @throws IOException в случае ошибки записи.
+         */
+        private static byte[] writeBlock(FileChannel out, Deflater deflater, ByteBuffer block,
+                                         byte[] compressed) throws IOException {
+            int rawLength = block.position();
+            deflater.reset();
+            deflater.setInput(block.array(), 0, rawLength);
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES).putInt(rawLength).putInt(compressedLength).flip();
+            ByteBuffer body = ByteBuffer.wrap(compressed, 0, compressedLength);
+            ByteBuffer[] buffers = {header, body};
+            while (body.hasRemaining()) {
+                out.write(buffers);
+            }
+            block.clear();
+            return compressed;
+        }
+
+        /**
+         * Вычисляет SHA-256 хэш тела ответа.
+         *
+         * @param body Тело ответа или null.
+         * @return Хэш тела ответа или нулевой массив, если тело отсутствует.
+         */
+        private static byte[] hash(String body) {
+            if (body == null) {
+                return new byte[AuditRecord.HASH_LENGTH];
+            }
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        /**
+         * Возвращает путь к файлу сегмента.
+         *
+         * @param directory Каталог журнала.
+         * @param segment   Номер сегмента.
+         * @param suffix    Расширение файла.
+         * @return Путь к файлу сегмента.
+         */
+        static Path segmentPath(Path directory, long segment, String suffix) {
+            return directory.resolve(String.format("%s%010d%s", PREFIX, segment, suffix));
+        }
+
+        /**
+         * Находит номера всех сегментов в каталоге журнала.
+         *
+         * @param directory Каталог журнала.
+         * @return Отсортированное множество номеров сегментов.
+         * @throws IOException в случае ошибки чтения каталога.
+         */
+        static SortedSet<Long> segments(Path directory) throws IOException {
+            SortedSet<Long> segments = new TreeSet<>();
+            try (Stream<Path> files = Files.list(directory)) {
+                files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.startsWith(PREFIX))
+                        .filter(name -> name.endsWith(LOG_SUFFIX) || name.endsWith(COMPRESSED_SUFFIX)
+                                || name.endsWith(INDEX_SUFFIX))
+                        .map(name -> name.substring(PREFIX.length(), name.lastIndexOf('.')))
+                        .filter(number -> !number.isEmpty() && number.chars().allMatch(Character::isDigit))
+                        .forEach(number -> segments.add(Long.parseLong(number)));
+            }
+            return segments;
+        }
+    }
+
+    /**
+     * Поиск записей журнала аудита по doc_id.
+     * Для сжатых сегментов по индексу распаковываются только блоки, где может быть документ,
+     * текущий несжатый сегмент просматривается целиком.
+     */
+    public static final class AuditReader {
+        private final Path directory;
+
+        /**
+         * Конструктор класса AuditReader.
+         *
+         * @param directory Каталог журнала аудита.
+         */
+        public AuditReader(Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Выводит все записи журнала для указанного документа.
+         *
+         * @param args Каталог журнала и doc_id.
+         * @throws IOException в случае ошибки чтения журнала.
+         */
+        public static void main(String[] args) throws IOException {
+            if (args.length != 2) {
+                System.err.println("Usage: CrptApi$AuditReader <audit directory> <doc_id>");
+                return;
+            }
+            for (AuditRecord record : new AuditReader(Path.of(args[0])).find(args[1])) {
+                System.out.println(record);
+            }
+        }
+
+        /**
+         * Находит все записи журнала для указанного документа в порядке записи.
+         *
+         * @param docId Идентификатор документа.
+         * @return Список найденных записей.
+         * @throws IOException в случае ошибки чтения журнала.
+         */
+        public List<AuditRecord> find(String docId) throws IOException {
+            List<AuditRecord> result = new ArrayList<>();
+            for (long segment : AuditSink.segments(directory)) {
+                Path compressed = AuditSink.segmentPath(directory, segment, AuditSink.COMPRESSED_SUFFIX);
+                Path index = AuditSink.segmentPath(directory, segment, AuditSink.INDEX_SUFFIX);
+                Path log = AuditSink.segmentPath(directory, segment, AuditSink.LOG_SUFFIX);
+                if (Files.exists(log)) {
+                    try {
+                        scan(ByteBuffer.wrap(Files.readAllBytes(log)), docId, result);
+                        continue;
+                    } catch (NoSuchFileException e) {
+                        // сегмент был сжат во время поиска, его записи уже есть в сжатом файле
+                    }
+                }
+                if (Files.exists(compressed) && Files.exists(index)) {
+                    findCompressed(compressed, index, docId, result);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Ищет документ в сжатом сегменте, распаковывая только блоки из индекса.
+         *
+         * @param compressed Файл сжатого сегмента.
+         * @param index      Файл индекса сегмента.
+         * @param docId      Идентификатор документа.
+         * @param result     Список для найденных записей.
+         * @throws IOException в случае ошибки чтения файлов.
+         */
+        private void findCompressed(Path compressed, Path index, String docId,
+                                    List<AuditRecord> result) throws IOException {
+            long hash = docId.hashCode();
+            List<Long> offsets = new ArrayList<>();
+            try (FileChannel in = FileChannel.open(index, StandardOpenOption.READ)) {
+                LongBuffer entries = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()).asLongBuffer();
+                int low = 0;
+                int high = entries.limit();
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (entries.get(middle) >> 32 < hash) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+                for (int i = low; i < entries.limit() && entries.get(i) >> 32 == hash; i++) {
+                    offsets.add(entries.get(i) & 0xFFFFFFFFL);
+                }
+            }
+            if (offsets.isEmpty()) {
+                return;
+            }
+            Inflater inflater = new Inflater();
+            try (FileChannel in = FileChannel.open(compressed, StandardOpenOption.READ)) {
+                for (long offset : offsets) {
+                    ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+                    readFully(in, header, offset);
+                    int rawLength = header.getInt(0);
+                    int compressedLength = header.getInt(Integer.BYTES);
+                    if (rawLength < 0 || compressedLength < 0
+                            || compressedLength > in.size() - offset - header.capacity()) {
+                        throw new IOException("Corrupted audit segment: " + compressed);
+                    }
+                    ByteBuffer body = ByteBuffer.allocate(compressedLength);
+                    readFully(in, body, offset + header.capacity());
+                    // лишний байт позволяет заметить блок, который распаковывается длиннее заголовка
+                    byte[] raw = new byte[rawLength + 1];
+                    int inflated = 0;
+                    inflater.reset();
+                    inflater.setInput(body.array());
+                    while (!inflater.finished()) {
+                        int count = inflater.inflate(raw, inflated, raw.length - inflated);
+                        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()
+                                || inflated == raw.length)) {
+                            break;
+                        }
+                        inflated += count;
+                    }
+                    if (!inflater.finished() || inflated != rawLength) {
+                        throw new IOException("Corrupted audit segment: " + compressed);
+                    }
+                    scan(ByteBuffer.wrap(raw, 0, rawLength), docId, result);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted audit segment: " + compressed, e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        /**
+         * Просматривает последовательность записей с префиксом длины.
+         * Первая недописанная или поврежденная запись считается концом последовательности.
+         *
+         * @param buffer Буфер с записями.
+         * @param docId  Идентификатор документа.
+         * @param result Список для найденных записей.
+         */
+        private static void scan(ByteBuffer buffer, String docId, List<AuditRecord> result) {
+            while (buffer.remaining() >= Integer.BYTES) {
+                int length = buffer.getInt();
+                if (length < AuditRecord.MIN_LENGTH || buffer.remaining() < length) {
+                    return;
+                }
+                AuditRecord record = AuditRecord.decode(buffer.slice(buffer.position(), length));
+                if (record == null) {
+                    return;
+                }
+                buffer.position(buffer.position() + length);
+                if (record.getDocId().equals(docId)) {
+                    result.add(record);
+                }
+            }
+        }
+
+        /**
+         * Читает из канала ровно столько байт, сколько помещается в буфер.
+         *
+         * @param in       Канал для чтения.
+         * @param buffer   Буфер для данных.
+         * @param position Позиция в файле.
+         * @throws IOException в случае ошибки чтения или преждевременного конца файла.
+         */
+        private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = in.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of audit segment");
+                }
+            }
         }
     }
 
@@ -0,0 +1,282 @@
+package org.goncharov;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuditSinkTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void findsRecordsInActiveLogSegment() throws Exception {
+        try (CrptApi.AuditSink sink = new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES)) {
+            sink.submit(document("doc1", "inn1"), 200, 15, "{\"value\":\"1\"}");
+            sink.submit(document("doc2", "inn2"), CrptApi.AuditRecord.FAILED_STATUS, 30, null);
+        }
+
+        assertTrue(Files.exists(segment(1, CrptApi.AuditSink.LOG_SUFFIX)));
+        CrptApi.AuditReader reader = new CrptApi.AuditReader(directory);
+        List<CrptApi.AuditRecord> first = reader.find("doc1");
+        assertEquals(1, first.size());
+        assertEquals("inn1", first.get(0).getParticipantInn());
+        assertEquals(200, first.get(0).getStatus());
+        assertEquals(15, first.get(0).getLatencyMillis());
+        assertArrayEquals(sha256("{\"value\":\"1\"}"), first.get(0).getBodyHash());
+        List<CrptApi.AuditRecord> second = reader.find("doc2");
+        assertEquals(1, second.size());
+        assertEquals(CrptApi.AuditRecord.FAILED_STATUS, second.get(0).getStatus());
+        assertArrayEquals(new byte[CrptApi.AuditRecord.HASH_LENGTH], second.get(0).getBodyHash());
+        assertTrue(reader.find("doc3").isEmpty());
+    }
+
+    @Test
+    void rotatesAndFindsRecordsInCompressedSegments() throws Exception {
+        int count = 2000;
+        try (CrptApi.AuditSink sink = new CrptApi.AuditSink(directory, 4096)) {
+            for (int i = 0; i < count; i++) {
+                sink.submit(document("doc" + i, "inn" + i % 7), 200, i, "body" + i);
+            }
+        }
+
+        assertTrue(Files.exists(segment(1, CrptApi.AuditSink.COMPRESSED_SUFFIX)));
+        assertTrue(Files.exists(segment(1, CrptApi.AuditSink.INDEX_SUFFIX)));
+        assertFalse(Files.exists(segment(1, CrptApi.AuditSink.LOG_SUFFIX)));
+        CrptApi.AuditReader reader = new CrptApi.AuditReader(directory);
+        for (int i = 0; i < count; i++) {
+            List<CrptApi.AuditRecord> records = reader.find("doc" + i);
+            assertEquals(1, records.size(), "doc" + i);
+            assertEquals("inn" + i % 7, records.get(0).getParticipantInn());
+            assertEquals(i, records.get(0).getLatencyMillis());
+            assertArrayEquals(sha256("body" + i), records.get(0).getBodyHash());
+        }
+        assertTrue(reader.find("doc" + count).isEmpty());
+    }
+
+    @Test
+    void recoversTruncatedLogOnStartup() throws Exception {
+        try (CrptApi.AuditSink sink = new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES)) {
+            sink.submit(document("doc1", "inn"), 200, 1, "body1");
+            sink.submit(document("doc2", "inn"), 200, 2, "body2");
+        }
+        Path log = segment(1, CrptApi.AuditSink.LOG_SUFFIX);
+        ByteBuffer partial = ByteBuffer.allocate(12).putInt(100).putLong(System.currentTimeMillis()).flip();
+        Files.write(log, partial.array(), StandardOpenOption.APPEND);
+
+        CrptApi.AuditReader reader = new CrptApi.AuditReader(directory);
+        assertEquals(1, reader.find("doc2").size());
+
+        new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES).close();
+
+        assertFalse(Files.exists(log));
+        assertTrue(Files.exists(segment(1, CrptApi.AuditSink.COMPRESSED_SUFFIX)));
+        assertEquals(1, reader.find("doc1").size());
+        assertEquals(1, reader.find("doc2").size());
+    }
+
+    @Test
+    void recoversZeroPaddedLogTail() throws Exception {
+        try (CrptApi.AuditSink sink = new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES)) {
+            sink.submit(document("doc1", "inn"), 200, 1, "body1");
+            sink.submit(document("doc2", "inn"), 200, 2, "body2");
+        }
+        Path log = segment(1, CrptApi.AuditSink.LOG_SUFFIX);
+        Files.write(log, new byte[4096], StandardOpenOption.APPEND);
+
+        CrptApi.AuditReader reader = new CrptApi.AuditReader(directory);
+        assertEquals(1, reader.find("doc2").size());
+
+        new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES).close();
+
+        assertFalse(Files.exists(log));
+        assertEquals(1, reader.find("doc1").size());
+        assertEquals(1, reader.find("doc2").size());
+    }
+
+    @Test
+    void stopsAtRecordWithCorruptStringLength() throws Exception {
+        try (CrptApi.AuditSink sink = new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES)) {
+            sink.submit(document("doc1", "inn"), 200, 1, "body1");
+        }
+        Path log = segment(1, CrptApi.AuditSink.LOG_SUFFIX);
+        for (int docIdLength : new int[]{Integer.MAX_VALUE, -5}) {
+            ByteBuffer corrupt = ByteBuffer.allocate(Integer.BYTES + CrptApi.AuditRecord.MIN_LENGTH)
+                    .putInt(CrptApi.AuditRecord.MIN_LENGTH)
+                    .putLong(System.currentTimeMillis())
+                    .putInt(200)
+                    .putLong(1)
+                    .putInt(docIdLength);
+            Files.write(log, corrupt.array(), StandardOpenOption.APPEND);
+        }
+
+        CrptApi.AuditReader reader = new CrptApi.AuditReader(directory);
+        assertEquals(1, reader.find("doc1").size());
+
+        new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES).close();
+
+        assertFalse(Files.exists(log));
+        assertEquals(1, reader.find("doc1").size());
+    }
+
+    @Test
+    void rejectsCompressedBlockWithWrongLength() throws Exception {
+        try (CrptApi.AuditSink sink = new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES)) {
+            sink.submit(document("doc1", "inn"), 200, 1, "body1");
+        }
+        new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES).close();
+        Path compressed = segment(1, CrptApi.AuditSink.COMPRESSED_SUFFIX);
+        byte[] bytes = Files.readAllBytes(compressed);
+        ByteBuffer header = ByteBuffer.wrap(bytes);
+        header.putInt(0, header.getInt(0) + 10);
+        Files.write(compressed, bytes);
+
+        CrptApi.AuditReader reader = new CrptApi.AuditReader(directory);
+        assertThrows(IOException.class, () -> reader.find("doc1"));
+    }
+
+    @Test
+    void distinguishesDocIdsWithSameHashCode() throws Exception {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        try (CrptApi.AuditSink sink = new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES)) {
+            sink.submit(document("Aa", "inn1"), 200, 1, "body1");
+            sink.submit(document("BB", "inn2"), 500, 2, "body2");
+            sink.submit(document("Aa", "inn1"), 201, 3, "body3");
+        }
+        new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES).close();
+        assertTrue(Files.exists(segment(1, CrptApi.AuditSink.COMPRESSED_SUFFIX)));
+
+        CrptApi.AuditReader reader = new CrptApi.AuditReader(directory);
+        List<CrptApi.AuditRecord> aa = reader.find("Aa");
+        assertEquals(2, aa.size());
+        assertEquals(200, aa.get(0).getStatus());
+        assertEquals(201, aa.get(1).getStatus());
+        List<CrptApi.AuditRecord> bb = reader.find("BB");
+        assertEquals(1, bb.size());
+        assertEquals(500, bb.get(0).getStatus());
+    }
+
+    @Test
+    void keepsWritingWhenCompressionFails() throws Exception {
+        Path blocker = segment(1, CrptApi.AuditSink.COMPRESSED_SUFFIX + ".tmp");
+        Files.createDirectories(blocker.resolve("blocker"));
+        try (CrptApi.AuditSink sink = new CrptApi.AuditSink(directory, 500)) {
+            for (int i = 0; i < 30; i++) {
+                sink.submit(document("doc" + i, "inn"), 200, i, "body" + i);
+            }
+            awaitFile(segment(2, CrptApi.AuditSink.LOG_SUFFIX));
+            for (int i = 30; i < 60; i++) {
+                sink.submit(document("doc" + i, "inn"), 200, i, "body" + i);
+            }
+        }
+
+        assertTrue(Files.exists(segment(1, CrptApi.AuditSink.LOG_SUFFIX)));
+        assertTrue(Files.exists(segment(2, CrptApi.AuditSink.COMPRESSED_SUFFIX)));
+        assertAllFound(60);
+
+        Files.delete(blocker.resolve("blocker"));
+        Files.delete(blocker);
+        new CrptApi.AuditSink(directory, 500).close();
+
+        assertFalse(Files.exists(segment(1, CrptApi.AuditSink.LOG_SUFFIX)));
+        assertTrue(Files.exists(segment(1, CrptApi.AuditSink.COMPRESSED_SUFFIX)));
+        assertAllFound(60);
+    }
+
+    @Test
+    void countsRecordsSubmittedAfterClose() throws Exception {
+        CrptApi.AuditSink sink = new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES);
+        sink.submit(document("doc1", "inn"), 200, 1, "body");
+        sink.close();
+        sink.submit(document("doc2", "inn"), 200, 1, "body");
+
+        assertEquals(1, sink.getDroppedRecords());
+        CrptApi.AuditReader reader = new CrptApi.AuditReader(directory);
+        assertEquals(1, reader.find("doc1").size());
+        assertTrue(reader.find("doc2").isEmpty());
+    }
+
+    @Test
+    void everyRecordSubmittedDuringCloseIsWrittenOrCounted() throws Exception {
+        int threads = 4;
+        int perThread = 500;
+        CrptApi.AuditSink sink = new CrptApi.AuditSink(directory, 64 * 1024);
+        CountDownLatch started = new CountDownLatch(threads);
+        List<Thread> submitters = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread submitter = new Thread(() -> {
+                started.countDown();
+                for (int i = 0; i < perThread; i++) {
+                    sink.submit(document(thread + "-" + i, "inn"), 200, i, "body");
+                }
+            });
+            submitter.start();
+            submitters.add(submitter);
+        }
+        started.await();
+        sink.close();
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+
+        CrptApi.AuditReader reader = new CrptApi.AuditReader(directory);
+        long written = 0;
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+                int found = reader.find(t + "-" + i).size();
+                assertTrue(found <= 1);
+                written += found;
+            }
+        }
+        assertEquals(threads * perThread, written + sink.getDroppedRecords());
+    }
+
+    @Test
+    void rejectsTooLargeSegment() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new CrptApi.AuditSink(directory, CrptApi.AuditSink.MAX_SEGMENT_BYTES + 1));
+        assertThrows(IllegalArgumentException.class, () -> new CrptApi.AuditSink(directory, 0));
+    }
+
+    private void assertAllFound(int count) throws IOException {
+        CrptApi.AuditReader reader = new CrptApi.AuditReader(directory);
+        for (int i = 0; i < count; i++) {
+            assertEquals(1, reader.find("doc" + i).size(), "doc" + i);
+        }
+    }
+
+    private Path segment(long number, String suffix) {
+        return CrptApi.AuditSink.segmentPath(directory, number, suffix);
+    }
+
+    private static void awaitFile(Path file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!Files.exists(file)) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for " + file);
+            Thread.sleep(20);
+        }
+    }
+
+    private static CrptApi.Document document(String docId, String participantInn) {
+        CrptApi.Document document = new CrptApi.Document();
+        document.setDoc_id(docId);
+        document.setParticipant_inn(participantInn);
+        return document;
+    }
+
+    private static byte[] sha256(String body) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.UTF_8));
+    }
+}